@@ -25,12 +25,19 @@
 package com.redspace.smartqueue;
 
 import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Queue;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 /**
  * SmartQueue -- Threadsafe Event Queueing with Deferred Dependencies and whatnot.
@@ -40,19 +47,32 @@ import java.util.concurrent.PriorityBlockingQueue;
  */
 public class SmartQueue<E extends Enum, D> {
 
-    private final Queue<SmartQueueRecord<E, D>> delegate = new PriorityBlockingQueue<>();
+    private final boolean bucketed;
+    private final Queue<SmartQueueRecord<E, D>> delegate;
 
     private final Set<E> seenEvents = new TreeSet<>();
     private final Map<E, Queue<SmartQueueRecord<E, D>>> deferedRecords = new HashMap<>();
-    private final SmartQueueWorker<E, D> smartQueueWorker;
+    private final Object lock = new Object();
+    private final SmartQueueDispatcher<E, D> dispatcher;
 
-    private final Set<Class> dependencies = new TreeSet<>();
+    private final Set<Class> dependencies = Collections.newSetFromMap(new ConcurrentHashMap<Class, Boolean>());
+    private final Map<Class, Set<SmartQueueRecord<E, D>>> dependents = new HashMap<>();
+
+    private final SmartQueueRateLimiter<E, D> rateLimiter = new SmartQueueRateLimiter<>();
 
     private final WeakReference<SmartQueueLogger> weakLogger;
 
-    private SmartQueue(SmartQueueProcessor<E, D> processor, SmartQueueLogger logger) {
-        weakLogger = new WeakReference<>(logger);
-        smartQueueWorker = new SmartQueueWorker<>(processor);
+    private SmartQueue(QueueBuilder<E, D> builder) {
+        weakLogger = new WeakReference<>(builder.logger);
+        bucketed = builder.bucketed;
+        delegate = newRecordQueue();
+        SmartQueueProcessor<E, D> processor = builder.processor;
+        SmartQueueScheduler scheduler = builder.scheduler;
+        if (scheduler == null) {
+            dispatcher = new SmartQueueWorker<>(processor, lock);
+        } else {
+            dispatcher = scheduler.newWorker(processor);
+        }
     }
 
     /**
@@ -65,9 +85,44 @@ public class SmartQueue<E extends Enum, D> {
 
     public static <E extends Enum, D> SmartQueue<E, D> create(SmartQueueProcessor<E, D> processor,
                                                               SmartQueueLogger logger) {
-        SmartQueue<E, D> smartQueue = new SmartQueue<>(processor, logger);
-        smartQueue.smartQueueWorker.setQueue(smartQueue);
-        smartQueue.smartQueueWorker.start();
+        return create(processor, logger, null);
+    }
+
+    /**
+     * Creates a SmartQueue instance which runs on a shared scheduler instead of its own Worker thread.
+     * @param processor "Where" events will go when they are dequeued, owned by caller.
+     * @param scheduler Scheduler shared with other queues, owned by caller.
+     */
+    public static <E extends Enum, D> SmartQueue<E, D> create(SmartQueueProcessor<E, D> processor,
+                                                              SmartQueueScheduler scheduler) {
+        return create(processor, EMPTY_LOGGER, scheduler);
+    }
+
+    /**
+     * Creates a SmartQueue instance.
+     * @param processor "Where" events will go when they are dequeued, owned by caller.
+     * @param logger    Where internal logging goes.
+     * @param scheduler Scheduler shared with other queues, owned by caller.  Null starts a dedicated Worker thread.
+     */
+    public static <E extends Enum, D> SmartQueue<E, D> create(SmartQueueProcessor<E, D> processor,
+                                                              SmartQueueLogger logger,
+                                                              SmartQueueScheduler scheduler) {
+        return builder(processor).withLogger(logger).withScheduler(scheduler).build();
+    }
+
+    /**
+     * Creates and passes back a new queue builder, for options create(...) doesn't cover.  User must call build()
+     * @param processor "Where" events will go when they are dequeued, owned by caller.
+     * @return A new builder object, which you can populate with extra optional settings.
+     */
+    public static <E extends Enum, D> QueueBuilder<E, D> builder(SmartQueueProcessor<E, D> processor) {
+        return new QueueBuilder<>(processor);
+    }
+
+    private static <E extends Enum, D> SmartQueue<E, D> start(QueueBuilder<E, D> builder) {
+        SmartQueue<E, D> smartQueue = new SmartQueue<>(builder);
+        smartQueue.dispatcher.setQueue(smartQueue);
+        smartQueue.dispatcher.start();
         smartQueue.getLogger().info("SmartQueue Created");
         return smartQueue;
     }
@@ -76,18 +131,91 @@ public class SmartQueue<E extends Enum, D> {
      * Add a class dependency.  Useful for plugin architectures.
      * @param klass The class that can be depended on.
      */
-    public synchronized void addDependency(Class klass) {
+    public void addDependency(Class klass) {
         getLogger().debug(String.format("Adding Dependency: %s", klass.getSimpleName()));
         dependencies.add(klass);
     }
 
     /**
-     * Remove a class dependency.  Useful for plugin architectures.
+     * Remove a class dependency.  Useful for plugin architectures.  Every queued or deferred record which depends
+     * on the class is purged immediately, even one still waiting on its defer.
      * @param klass The class that can no longer be depended on.
      */
-    public synchronized void removeDependency(Class klass) {
+    public void removeDependency(Class klass) {
+        removeDependency(klass, null);
+    }
+
+    /**
+     * Remove a class dependency.  Useful for plugin architectures.  Every queued or deferred record which depends
+     * on the class is purged immediately, even one still waiting on its defer, and handed to the listener.
+     * @param klass    The class that can no longer be depended on.
+     * @param listener Called for each purged record, on the calling thread.  May be null.
+     */
+    public void removeDependency(Class klass, SmartQueuePurgeListener<E, D> listener) {
         getLogger().debug(String.format("Removing Dependency: %s", klass.getSimpleName()));
         dependencies.remove(klass);
+
+        final Set<SmartQueueRecord<E, D>> purged;
+        synchronized (lock) {
+            if (dependencies.contains(klass) || !dependents.containsKey(klass)) {
+                return;
+            }
+            purged = dependents.remove(klass);
+            purge(delegate, purged);
+            Iterator<Queue<SmartQueueRecord<E, D>>> deferQueues = deferedRecords.values().iterator();
+            while (deferQueues.hasNext()) {
+                Queue<SmartQueueRecord<E, D>> deferQueue = deferQueues.next();
+                purge(deferQueue, purged);
+                if (deferQueue.isEmpty()) {
+                    deferQueues.remove();
+                }
+            }
+            rateLimiter.purge(purged);
+        }
+
+        getLogger().info(String.format("Purged %d Records depending on %s", purged.size(), klass.getSimpleName()));
+        if (listener != null) {
+            for (SmartQueueRecord<E, D> record : purged) {
+                listener.onPurged(record.getEvent(), record.getData());
+            }
+        }
+    }
+
+    /**
+     * Limit how quickly records of a given event type are handed to the processor.  Records over the limit are held
+     * back without blocking other event types, and released as soon as a token is available.
+     * @param event            The event type to limit
+     * @param permitsPerSecond Sustained rate, in records per second
+     * @param burst            Maximum number of records that can be dispatched back to back
+     */
+    public void setRateLimit(E event, double permitsPerSecond, int burst) {
+        getLogger().debug(String.format("Setting Rate Limit for %s: %f/s, burst %d", event, permitsPerSecond, burst));
+        rateLimiter.setLimit(event, permitsPerSecond, burst);
+        wakeWorker();
+    }
+
+    /**
+     * Remove the rate limit for an event type.  Any held back records are released.
+     * @param event The event type to stop limiting
+     */
+    public void clearRateLimit(E event) {
+        getLogger().debug(String.format("Clearing Rate Limit for %s", event));
+        rateLimiter.clearLimit(event);
+        wakeWorker();
+    }
+
+    /**
+     * @return Total number of records which have been held back by a rate limit.
+     */
+    public long getThrottledRecordCount() {
+        return rateLimiter.getThrottledRecordCount();
+    }
+
+    /**
+     * @return Total time, in milliseconds, released records spent held back by a rate limit.
+     */
+    public long getThrottledMillis() {
+        return rateLimiter.getThrottledMillis();
     }
 
     SmartQueueLogger getLogger() {
@@ -107,49 +235,148 @@ public class SmartQueue<E extends Enum, D> {
 
     private void add(SmartQueueRecord<E, D> record) {
         getLogger().debug(String.format("add(%s)", record.toString()));
-        synchronized (smartQueueWorker) {
+        synchronized (lock) {
             delegate.add(record);
-            smartQueueWorker.notify();
+            index(record);
         }
+        SmartQueueEvents.add(record);
+        dispatcher.signal();
+    }
+
+    private void wakeWorker() {
+        dispatcher.signal();
     }
 
     SmartQueueRecord<E, D> remove() {
-        if (smartQueueWorker.getId() != Thread.currentThread().getId()) {
+        if (!dispatcher.isWorkerThread()) {
             throw new IllegalAccessError("Only the Worker Thread can dequeue objects");
         }
 
-        final SmartQueueRecord<E, D> removed;
-        synchronized (smartQueueWorker) {
-            if (!delegate.isEmpty()) {
-                removed = delegate.remove();
-            } else {
+        SmartQueueRecord<E, D> removed = removeLocked();
+        if (removed != null) {
+            SmartQueueEvents.remove(removed);
+        }
+        return removed;
+    }
+
+    private SmartQueueRecord<E, D> removeLocked() {
+        synchronized (lock) {
+            SmartQueueRecord<E, D> released = rateLimiter.release(delegate.peek());
+            if (released != null) {
+                unindex(released);
+                if (isRecordValid(released)) {
+                    enqueueDeferred(released);
+                    getLogger().debug(String.format("remove() -> released %s", released));
+                    return released;
+                }
                 getLogger().debug("remove() -> null");
                 return null;
             }
-        }
 
-        if (isRecordValid(removed) && !shouldDefer(removed)) {
+            if (delegate.isEmpty()) {
+                getLogger().debug("remove() -> null");
+                return null;
+            }
+
+            SmartQueueRecord<E, D> removed = delegate.remove();
+            if (!isRecordValid(removed)) {
+                unindex(removed);
+                getLogger().debug("remove() -> null");
+                return null;
+            }
+
+            if (shouldDefer(removed)) {
+                getLogger().debug("remove() -> null");
+                return null;
+            }
+
+            if (!rateLimiter.tryAcquire(removed)) {
+                getLogger().verbose(String.format("Holding back rate limited record %s", removed));
+                return null;
+            }
+
+            unindex(removed);
             enqueueDeferred(removed);
             getLogger().debug(String.format("remove() -> %s", removed));
             return removed;
         }
+    }
 
-        getLogger().debug("remove() -> null");
-        return null;
+    private void index(SmartQueueRecord<E, D> record) {
+        Class dependency = record.getDependsOn();
+        if (dependency == null) {
+            return;
+        }
+        Set<SmartQueueRecord<E, D>> records = dependents.get(dependency);
+        if (records == null) {
+            records = new HashSet<>();
+            dependents.put(dependency, records);
+        }
+        records.add(record);
+    }
+
+    private void unindex(SmartQueueRecord<E, D> record) {
+        Class dependency = record.getDependsOn();
+        if (dependency == null) {
+            return;
+        }
+        Set<SmartQueueRecord<E, D>> records = dependents.get(dependency);
+        if (records != null) {
+            records.remove(record);
+            if (records.isEmpty()) {
+                dependents.remove(dependency);
+            }
+        }
+    }
+
+    /**
+     * Rebuilds the queue without the purged records.  Cheaper than removing them one at a time from a heap.
+     */
+    private static <E extends Enum, D> void purge(Queue<SmartQueueRecord<E, D>> queue,
+                                                  Set<SmartQueueRecord<E, D>> purged) {
+        List<SmartQueueRecord<E, D>> kept = new ArrayList<>(queue.size());
+        for (SmartQueueRecord<E, D> record : queue) {
+            if (!purged.contains(record)) {
+                kept.add(record);
+            }
+        }
+        if (kept.size() != queue.size()) {
+            queue.clear();
+            queue.addAll(kept);
+        }
+    }
+
+    /**
+     * @return Nanos until remove() may have something to hand out, 0 if it may now, or -1 if it won't until more
+     *         records are added.
+     */
+    long nanosUntilReady() {
+        synchronized (lock) {
+            if (!delegate.isEmpty()) {
+                return 0;
+            }
+            return rateLimiter.nanosUntilNextRelease();
+        }
     }
 
     void onWorkerDone() {
         getLogger().debug("onWorkerDone()");
-        synchronized (smartQueueWorker) {
-            if (delegate.isEmpty()) {
-                try {
-                    getLogger().verbose("Awaiting More Events");
-                    smartQueueWorker.wait();
-                }
-                catch (InterruptedException e) {
-                    getLogger().error("Thread was interrupted during wait", e);
+        synchronized (lock) {
+            long readyNanos = nanosUntilReady();
+            if (readyNanos == 0) {
+                return;
+            }
+            try {
+                getLogger().verbose("Awaiting More Events");
+                if (readyNanos > 0) {
+                    TimeUnit.NANOSECONDS.timedWait(lock, readyNanos);
+                } else {
+                    lock.wait();
                 }
             }
+            catch (InterruptedException e) {
+                getLogger().error("Thread was interrupted during wait", e);
+            }
         }
     }
 
@@ -160,18 +387,22 @@ public class SmartQueue<E extends Enum, D> {
         if (deferedRecords.containsKey(event)) {
             Queue<SmartQueueRecord<E, D>> queue = deferedRecords.get(event);
             getLogger().verbose(String.format("Enqueuing %d Deferred Events for %s", queue.size(), event.name()));
+            SmartQueueEvents.enqueueDeferred(event, queue);
             delegate.addAll(queue);
             deferedRecords.remove(event);
         }
     }
 
     private boolean isRecordValid(SmartQueueRecord<E, D> record) {
+        // A record still waiting on its defer gets until then for its dependency to be added.  Records whose
+        // dependency was removed never get here, removeDependency purges them.
         Class dependency = record.getDependsOn();
         E defer = record.getDeferUntil();
         if (dependency != null
                 && !dependencies.contains(dependency)
                 && (defer == null || deferedRecords.containsKey(defer))) {
             getLogger().info(String.format("Removing Invalid Record: %s", record.toString()));
+            SmartQueueEvents.expire(record, "Missing dependency");
             return false;
         }
 
@@ -181,6 +412,7 @@ public class SmartQueue<E extends Enum, D> {
         boolean isValid = !(lifespan != 0 && lifespan < now - creationDate);
         if (!isValid) {
             getLogger().info(String.format("Removing Invalid Record: %s", record.toString()));
+            SmartQueueEvents.expire(record, "Lifespan exceeded");
         }
         return isValid;
 
@@ -201,10 +433,73 @@ public class SmartQueue<E extends Enum, D> {
         getLogger().verbose(String.format("Deferring record until event %s is seen.", deferType.name()));
         Queue<SmartQueueRecord<E, D>> deferQueue = deferedRecords.get(deferType);
         if (deferQueue == null) {
-            deferQueue = new PriorityBlockingQueue<>();
+            deferQueue = newRecordQueue();
             deferedRecords.put(deferType, deferQueue);
         }
         deferQueue.add(record);
+        SmartQueueEvents.defer(record);
+    }
+
+    private Queue<SmartQueueRecord<E, D>> newRecordQueue() {
+        if (bucketed) {
+            return new SmartQueueBucketQueue<>();
+        }
+        return new PriorityBlockingQueue<>();
+    }
+
+    /**
+     * Builds a SmartQueue and starts its Worker
+     * @param <E> Event Enumeration Type
+     * @param <D> Data type
+     */
+    public static class QueueBuilder<E extends Enum, D> {
+
+        private final SmartQueueProcessor<E, D> processor;
+        private SmartQueueLogger logger = EMPTY_LOGGER;
+        private SmartQueueScheduler scheduler = null;
+        private boolean bucketed = false;
+
+        private QueueBuilder(SmartQueueProcessor<E, D> processor) {
+            this.processor = processor;
+        }
+
+        /**
+         * Set logger for queue
+         * @param logger Where internal logging goes
+         * @return this builder.
+         */
+        public QueueBuilder<E, D> withLogger(SmartQueueLogger logger) {
+            this.logger = logger == null ? EMPTY_LOGGER : logger;
+            return this;
+        }
+
+        /**
+         * Run the queue on a shared scheduler instead of its own Worker thread
+         * @param scheduler Scheduler shared with other queues, or null for a dedicated Worker thread
+         * @return this builder.
+         */
+        public QueueBuilder<E, D> withScheduler(SmartQueueScheduler scheduler) {
+            this.scheduler = scheduler;
+            return this;
+        }
+
+        /**
+         * Back the queue with one FIFO bucket per priority level instead of a heap.  Insertion is O(1) and records
+         * of equal priority come out in the order they went in.  Worth it when using many numeric priority levels.
+         * @return this builder.
+         */
+        public QueueBuilder<E, D> withBucketedPriorities() {
+            this.bucketed = true;
+            return this;
+        }
+
+        /**
+         * Create the queue and start its Worker
+         * @return the new queue.
+         */
+        public SmartQueue<E, D> build() {
+            return start(this);
+        }
     }
 
     /**
@@ -242,6 +537,16 @@ public class SmartQueue<E extends Enum, D> {
             return this;
         }
 
+        /**
+         * Set a numeric priority for record.  Higher levels are processed first.
+         * @param level Between SmartQueuePriority.MIN_LEVEL and SmartQueuePriority.MAX_LEVEL
+         * @return this builder.
+         */
+        public RecordBuilder<E, D> withPriority(int level) {
+            delegate.withPriority(level);
+            return this;
+        }
+
         /**
          * Set an event to require first
          * @param eventType The required event
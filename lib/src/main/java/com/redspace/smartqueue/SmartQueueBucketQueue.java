@@ -0,0 +1,190 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Alex Hart
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.redspace.smartqueue;
+
+import java.util.AbstractQueue;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Priority queue with one FIFO bucket per numeric priority level, and a two level bitmap of the non-empty buckets.
+ * Offer is O(1), and finding the highest non-empty level takes two leading zero counts.
+ *
+ * Not thread safe.  SmartQueue only touches it while holding its lock.
+ * @param <E> The event type
+ * @param <D> The data type
+ */
+final class SmartQueueBucketQueue<E extends Enum, D> extends AbstractQueue<SmartQueueRecord<E, D>> {
+
+    private static final int BUCKETS = SmartQueuePriority.MAX_LEVEL + 1;
+
+    private final ArrayDeque<SmartQueueRecord<E, D>>[] buckets = newBuckets(BUCKETS);
+    private final long[] words = new long[(BUCKETS + 63) >>> 6];
+    private long summary;
+    private int size;
+
+    @Override
+    public boolean offer(SmartQueueRecord<E, D> record) {
+        int level = record.getPriority();
+        ArrayDeque<SmartQueueRecord<E, D>> bucket = buckets[level];
+        if (bucket == null) {
+            bucket = new ArrayDeque<>();
+            buckets[level] = bucket;
+        }
+        bucket.add(record);
+        mark(level);
+        size++;
+        return true;
+    }
+
+    @Override
+    public SmartQueueRecord<E, D> poll() {
+        if (size == 0) {
+            return null;
+        }
+        int level = highestAtOrBelow(BUCKETS - 1);
+        ArrayDeque<SmartQueueRecord<E, D>> bucket = buckets[level];
+        SmartQueueRecord<E, D> record = bucket.poll();
+        if (bucket.isEmpty()) {
+            unmark(level);
+        }
+        size--;
+        return record;
+    }
+
+    @Override
+    public SmartQueueRecord<E, D> peek() {
+        if (size == 0) {
+            return null;
+        }
+        return buckets[highestAtOrBelow(BUCKETS - 1)].peek();
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public void clear() {
+        for (ArrayDeque<SmartQueueRecord<E, D>> bucket : buckets) {
+            if (bucket != null) {
+                bucket.clear();
+            }
+        }
+        for (int i = 0; i < words.length; i++) {
+            words[i] = 0;
+        }
+        summary = 0;
+        size = 0;
+    }
+
+    /**
+     * Iterates from the highest level down, FIFO within each level.
+     */
+    @Override
+    public Iterator<SmartQueueRecord<E, D>> iterator() {
+        return new Itr();
+    }
+
+    private void mark(int level) {
+        int word = level >>> 6;
+        words[word] |= 1L << (level & 63);
+        summary |= 1L << word;
+    }
+
+    private void unmark(int level) {
+        int word = level >>> 6;
+        words[word] &= ~(1L << (level & 63));
+        if (words[word] == 0) {
+            summary &= ~(1L << word);
+        }
+    }
+
+    /**
+     * @return The highest non-empty level no greater than the given one, or -1 if there is none.
+     */
+    private int highestAtOrBelow(int level) {
+        if (level < 0) {
+            return -1;
+        }
+        int word = level >>> 6;
+        long bits = words[word] & (-1L >>> (63 - (level & 63)));
+        if (bits == 0) {
+            long lowerWords = summary & ((1L << word) - 1);
+            if (lowerWords == 0) {
+                return -1;
+            }
+            word = 63 - Long.numberOfLeadingZeros(lowerWords);
+            bits = words[word];
+        }
+        return (word << 6) + 63 - Long.numberOfLeadingZeros(bits);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <E extends Enum, D> ArrayDeque<SmartQueueRecord<E, D>>[] newBuckets(int size) {
+        return new ArrayDeque[size];
+    }
+
+    private final class Itr implements Iterator<SmartQueueRecord<E, D>> {
+        private int level = highestAtOrBelow(BUCKETS - 1);
+        private Iterator<SmartQueueRecord<E, D>> current = level < 0 ? null : buckets[level].iterator();
+        private Iterator<SmartQueueRecord<E, D>> lastReturned;
+        private int lastLevel;
+
+        @Override
+        public boolean hasNext() {
+            while (current != null && !current.hasNext()) {
+                level = highestAtOrBelow(level - 1);
+                current = level < 0 ? null : buckets[level].iterator();
+            }
+            return current != null;
+        }
+
+        @Override
+        public SmartQueueRecord<E, D> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            lastReturned = current;
+            lastLevel = level;
+            return current.next();
+        }
+
+        @Override
+        public void remove() {
+            if (lastReturned == null) {
+                throw new IllegalStateException();
+            }
+            lastReturned.remove();
+            lastReturned = null;
+            size--;
+            if (buckets[lastLevel].isEmpty()) {
+                unmark(lastLevel);
+            }
+        }
+    }
+}
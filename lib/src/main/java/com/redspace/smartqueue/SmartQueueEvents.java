@@ -0,0 +1,121 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Alex Hart
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.redspace.smartqueue;
+
+import java.lang.reflect.Array;
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Hot path tracing hooks.  These emit JDK Flight Recorder events when running on a JVM that has Flight Recorder, and
+ * do nothing otherwise.  Events are only filled in and committed while a recording has them enabled, so the hooks
+ * can stay in place permanently.
+ */
+final class SmartQueueEvents {
+
+    private static final boolean FLIGHT_RECORDER_AVAILABLE = isFlightRecorderAvailable();
+
+    private SmartQueueEvents() {
+    }
+
+    static void add(SmartQueueRecord<?, ?> record) {
+        if (FLIGHT_RECORDER_AVAILABLE) {
+            SmartQueueFlightRecorder.add(record);
+        }
+    }
+
+    static void remove(SmartQueueRecord<?, ?> record) {
+        if (FLIGHT_RECORDER_AVAILABLE) {
+            SmartQueueFlightRecorder.remove(record);
+        }
+    }
+
+    static void defer(SmartQueueRecord<?, ?> record) {
+        if (FLIGHT_RECORDER_AVAILABLE) {
+            SmartQueueFlightRecorder.defer(record);
+        }
+    }
+
+    /**
+     * Emits one event per record put back on the queue.
+     * @param releasedBy The event whose arrival released the records
+     */
+    static void enqueueDeferred(Enum releasedBy, Collection<? extends SmartQueueRecord<?, ?>> records) {
+        if (FLIGHT_RECORDER_AVAILABLE) {
+            SmartQueueFlightRecorder.enqueueDeferred(releasedBy, records);
+        }
+    }
+
+    static void expire(SmartQueueRecord<?, ?> record, String reason) {
+        if (FLIGHT_RECORDER_AVAILABLE) {
+            SmartQueueFlightRecorder.expire(record, reason);
+        }
+    }
+
+    /**
+     * Call right before handing a record to the processor, and pass the result to endDispatch afterwards.
+     * @return An opaque token, or null when Flight Recorder isn't available.
+     */
+    static Object beginDispatch(SmartQueueRecord<?, ?> record) {
+        if (FLIGHT_RECORDER_AVAILABLE) {
+            return SmartQueueFlightRecorder.beginDispatch(record);
+        }
+        return null;
+    }
+
+    static void endDispatch(Object token) {
+        if (token != null) {
+            SmartQueueFlightRecorder.endDispatch(token);
+        }
+    }
+
+    /**
+     * Best guess at the size of a record's data: length for strings and arrays, size for collections and maps,
+     * and -1 for anything else.
+     */
+    static int payloadSize(Object data) {
+        if (data instanceof CharSequence) {
+            return ((CharSequence) data).length();
+        } else if (data instanceof Collection) {
+            return ((Collection) data).size();
+        } else if (data instanceof Map) {
+            return ((Map) data).size();
+        } else if (data != null && data.getClass().isArray()) {
+            return Array.getLength(data);
+        }
+        return -1;
+    }
+
+    private static boolean isFlightRecorderAvailable() {
+        try {
+            Class.forName("jdk.jfr.Event");
+            return true;
+        } catch (ClassNotFoundException e) {
+            return false;
+        } catch (LinkageError e) {
+            return false;
+        }
+    }
+}
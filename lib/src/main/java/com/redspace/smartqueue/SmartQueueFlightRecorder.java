@@ -0,0 +1,175 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Alex Hart
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.redspace.smartqueue;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+import java.util.Collection;
+
+/**
+ * The JDK Flight Recorder events behind SmartQueueEvents.  Only loaded once SmartQueueEvents has checked that
+ * jdk.jfr is present.
+ */
+final class SmartQueueFlightRecorder {
+
+    private SmartQueueFlightRecorder() {
+    }
+
+    static void add(SmartQueueRecord<?, ?> record) {
+        AddEvent event = new AddEvent();
+        if (event.shouldCommit()) {
+            fill(event, record);
+            event.commit();
+        }
+    }
+
+    static void remove(SmartQueueRecord<?, ?> record) {
+        RemoveEvent event = new RemoveEvent();
+        if (event.shouldCommit()) {
+            fill(event, record);
+            event.commit();
+        }
+    }
+
+    static void defer(SmartQueueRecord<?, ?> record) {
+        DeferEvent event = new DeferEvent();
+        if (event.shouldCommit()) {
+            fill(event, record);
+            event.deferUntil = record.getDeferUntil().name();
+            event.commit();
+        }
+    }
+
+    static void enqueueDeferred(Enum releasedBy, Collection<? extends SmartQueueRecord<?, ?>> records) {
+        for (SmartQueueRecord<?, ?> record : records) {
+            EnqueueDeferredEvent event = new EnqueueDeferredEvent();
+            if (!event.shouldCommit()) {
+                return;
+            }
+            fill(event, record);
+            event.releasedBy = releasedBy.name();
+            event.commit();
+        }
+    }
+
+    static void expire(SmartQueueRecord<?, ?> record, String reason) {
+        ExpireEvent event = new ExpireEvent();
+        if (event.shouldCommit()) {
+            fill(event, record);
+            event.reason = reason;
+            event.commit();
+        }
+    }
+
+    static Object beginDispatch(SmartQueueRecord<?, ?> record) {
+        DispatchEvent event = new DispatchEvent();
+        if (event.isEnabled()) {
+            fill(event, record);
+        }
+        event.begin();
+        return event;
+    }
+
+    static void endDispatch(Object token) {
+        DispatchEvent event = (DispatchEvent) token;
+        event.end();
+        if (event.shouldCommit()) {
+            event.commit();
+        }
+    }
+
+    private static void fill(RecordEvent event, SmartQueueRecord<?, ?> record) {
+        event.eventType = record.getEvent().name();
+        event.priority = record.getPriority();
+        event.dwellTime = System.currentTimeMillis() - record.getCreatedAt();
+        event.payloadSize = SmartQueueEvents.payloadSize(record.getData());
+    }
+
+    @Category("SmartQueue")
+    @StackTrace(false)
+    abstract static class RecordEvent extends Event {
+        @Label("Event Type")
+        String eventType;
+
+        @Label("Priority")
+        int priority;
+
+        @Label("Dwell Time")
+        @Description("Time since the record was created")
+        @Timespan(Timespan.MILLISECONDS)
+        long dwellTime;
+
+        @Label("Payload Size")
+        @Description("Length or size of the record's data, or -1 if unknown")
+        int payloadSize;
+    }
+
+    @Name("com.redspace.smartqueue.Add")
+    @Label("SmartQueue Add")
+    static final class AddEvent extends RecordEvent {
+    }
+
+    @Name("com.redspace.smartqueue.Remove")
+    @Label("SmartQueue Remove")
+    @Description("A record was dequeued for processing")
+    static final class RemoveEvent extends RecordEvent {
+    }
+
+    @Name("com.redspace.smartqueue.Defer")
+    @Label("SmartQueue Defer")
+    static final class DeferEvent extends RecordEvent {
+        @Label("Defer Until")
+        String deferUntil;
+    }
+
+    @Name("com.redspace.smartqueue.Expire")
+    @Label("SmartQueue Expire")
+    @Description("A record was dropped as invalid before processing")
+    static final class ExpireEvent extends RecordEvent {
+        @Label("Reason")
+        String reason;
+    }
+
+    @Name("com.redspace.smartqueue.Dispatch")
+    @Label("SmartQueue Dispatch")
+    @Description("A record was handed to the processor.  The duration is the time spent in the processor")
+    static final class DispatchEvent extends RecordEvent {
+    }
+
+    @Name("com.redspace.smartqueue.EnqueueDeferred")
+    @Label("SmartQueue Enqueue Deferred")
+    @Description("A deferred record was put back on the queue")
+    static final class EnqueueDeferredEvent extends RecordEvent {
+        @Label("Released By")
+        @Description("The event type whose arrival released the record")
+        String releasedBy;
+    }
+}
@@ -24,10 +24,30 @@
 
 package com.redspace.smartqueue;
 
+/**
+ * Named priority levels.  Records may also be given any numeric level between MIN_LEVEL and MAX_LEVEL, higher
+ * levels being processed first.  Each name maps onto a fixed level so the two can be mixed.
+ */
 public enum SmartQueuePriority {
-    IDLE,
-    LOW,
-    NORMAL,
-    HIGH,
-    CRITICAL
+    IDLE(0),
+    LOW(256),
+    NORMAL(512),
+    HIGH(768),
+    CRITICAL(1023);
+
+    public static final int MIN_LEVEL = 0;
+    public static final int MAX_LEVEL = 1023;
+
+    private final int level;
+
+    SmartQueuePriority(int level) {
+        this.level = level;
+    }
+
+    /**
+     * @return The numeric level this priority maps to.
+     */
+    public int getLevel() {
+        return level;
+    }
 }
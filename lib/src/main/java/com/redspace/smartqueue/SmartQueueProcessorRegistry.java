@@ -0,0 +1,180 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Alex Hart
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.redspace.smartqueue;
+
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Routes each event type to zero or more processors, through a table indexed by event ordinal.
+ *
+ * Each binding either runs inline on the worker thread, or is handed to an Executor (such as a ForkJoinPool) so that
+ * slow subscribers don't hold up the rest of the queue.  Pass the registry to SmartQueue.create(...) like any other
+ * processor.  As with any processor, keep a strong reference to it.  The registry holds its bound processors strongly.
+ *
+ * If an Executor rejects a binding (because it was shut down or is saturated), that binding runs inline on the worker
+ * thread instead, so the event is neither lost nor allowed to kill the worker.
+ *
+ * A processor bound to an Executor with more than one thread can run concurrently with itself, and can see successive
+ * events out of order.  Such processors must be thread-safe, and get no ordering guarantees from the queue.  Bind them
+ * inline, or to a single threaded Executor, if they need either.
+ *
+ * @param <E> The event type
+ * @param <D> The data type
+ */
+public final class SmartQueueProcessorRegistry<E extends Enum, D> implements SmartQueueProcessor<E, D> {
+
+    private volatile Binding<E, D>[][] bindings;
+
+    /**
+     * @param eventClass The event enum, used to size the routing table.
+     */
+    public SmartQueueProcessorRegistry(Class<E> eventClass) {
+        bindings = newTable(eventClass.getEnumConstants().length);
+    }
+
+    /**
+     * Bind a processor to an event type.  It will run inline on the worker thread.
+     * @param event     The event type
+     * @param processor The processor to call
+     * @return this registry.
+     */
+    public SmartQueueProcessorRegistry<E, D> bind(E event, SmartQueueProcessor<E, D> processor) {
+        return bind(event, processor, null);
+    }
+
+    /**
+     * Bind a processor to an event type.  It will be submitted to the given executor, in parallel with any other
+     * bindings for the event.  With a multi-threaded executor the processor can also run concurrently with itself,
+     * and out of order for successive events, so it must be thread-safe.
+     * @param event     The event type
+     * @param processor The processor to call
+     * @param executor  Where to run the processor.  Null runs it inline on the worker thread, as does a rejection.
+     * @return this registry.
+     */
+    public synchronized SmartQueueProcessorRegistry<E, D> bind(E event, SmartQueueProcessor<E, D> processor,
+                                                              Executor executor) {
+        if (processor == null) {
+            throw new IllegalArgumentException("processor cannot be null");
+        }
+        Binding<E, D>[][] table = bindings.clone();
+        Binding<E, D>[] current = table[event.ordinal()];
+        Binding<E, D>[] updated = Arrays.copyOf(current, current.length + 1);
+        updated[current.length] = new Binding<>(processor, executor);
+        table[event.ordinal()] = updated;
+        bindings = table;
+        return this;
+    }
+
+    /**
+     * Remove every binding of a processor from an event type.
+     * @param event     The event type
+     * @param processor The processor to remove
+     * @return this registry.
+     */
+    public synchronized SmartQueueProcessorRegistry<E, D> unbind(E event, SmartQueueProcessor<E, D> processor) {
+        Binding<E, D>[][] table = bindings.clone();
+        Binding<E, D>[] current = table[event.ordinal()];
+        Binding<E, D>[] updated = newRow(current.length);
+        int size = 0;
+        for (Binding<E, D> binding : current) {
+            if (binding.processor != processor) {
+                updated[size++] = binding;
+            }
+        }
+        table[event.ordinal()] = Arrays.copyOf(updated, size);
+        bindings = table;
+        return this;
+    }
+
+    /**
+     * @param event The event type
+     * @return true if at least one processor is bound to the event.
+     */
+    public boolean hasBindings(E event) {
+        return bindings[event.ordinal()].length > 0;
+    }
+
+    /**
+     * Dispatches to every processor bound to the event.  Executor bindings are submitted first, so they can overlap
+     * with the inline ones.  This does not wait for executor bindings to finish.  Rejected executor bindings run
+     * inline along with the others.
+     */
+    @Override
+    public void process(final E event, final D data) {
+        Binding<E, D>[] row = bindings[event.ordinal()];
+        boolean[] rejected = null;
+        for (int i = 0; i < row.length; i++) {
+            final Binding<E, D> binding = row[i];
+            if (binding.executor == null) {
+                continue;
+            }
+            try {
+                binding.executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        binding.processor.process(event, data);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                if (rejected == null) {
+                    rejected = new boolean[row.length];
+                }
+                rejected[i] = true;
+            }
+        }
+        for (int i = 0; i < row.length; i++) {
+            Binding<E, D> binding = row[i];
+            if (binding.executor == null || (rejected != null && rejected[i])) {
+                binding.processor.process(event, data);
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <E extends Enum, D> Binding<E, D>[][] newTable(int size) {
+        Binding<E, D>[][] table = new Binding[size][];
+        for (int i = 0; i < size; i++) {
+            table[i] = newRow(0);
+        }
+        return table;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <E extends Enum, D> Binding<E, D>[] newRow(int size) {
+        return new Binding[size];
+    }
+
+    private static final class Binding<E extends Enum, D> {
+        private final SmartQueueProcessor<E, D> processor;
+        private final Executor executor;
+
+        private Binding(SmartQueueProcessor<E, D> processor, Executor executor) {
+            this.processor = processor;
+            this.executor = executor;
+        }
+    }
+}
@@ -0,0 +1,281 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Alex Hart
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.redspace.smartqueue;
+
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per-event token buckets, indexed by event ordinal.  Records whose event has run out of tokens are held back
+ * here, in priority order per event (oldest first within a priority), and handed back to the worker once a token
+ * becomes available.
+ *
+ * Held records are only touched while holding the SmartQueue's worker lock.  Limits may be changed from any thread.
+ * @param <E> The event type
+ * @param <D> The data type
+ */
+final class SmartQueueRateLimiter<E extends Enum, D> {
+
+    private volatile TokenBucket[] buckets = new TokenBucket[0];
+    private Queue<HeldRecord<E, D>>[] heldRecords = newTable(0);
+
+    private final AtomicLong throttledRecords = new AtomicLong();
+    private final AtomicLong throttledNanos = new AtomicLong();
+    private long heldSequence;
+
+    synchronized void setLimit(E event, double permitsPerSecond, int burst) {
+        if (permitsPerSecond <= 0) {
+            throw new IllegalArgumentException("permitsPerSecond must be positive");
+        }
+        if (burst < 1) {
+            throw new IllegalArgumentException("burst must be at least 1");
+        }
+        TokenBucket[] table = ensureCapacity(event);
+        table[event.ordinal()] = new TokenBucket(permitsPerSecond, burst, System.nanoTime());
+        buckets = table;
+    }
+
+    synchronized void clearLimit(E event) {
+        TokenBucket[] table = buckets;
+        if (event.ordinal() < table.length) {
+            table = table.clone();
+            table[event.ordinal()] = null;
+            buckets = table;
+        }
+    }
+
+    /**
+     * Takes a token for the record, or holds it back if none are available.
+     * @return true if the record may be dispatched now.
+     */
+    boolean tryAcquire(SmartQueueRecord<E, D> record) {
+        int ordinal = record.getEvent().ordinal();
+        TokenBucket bucket = getBucket(ordinal);
+        if (bucket == null) {
+            return true;
+        }
+
+        long now = System.nanoTime();
+        Queue<HeldRecord<E, D>> held = getHeld(ordinal);
+        if ((held == null || held.isEmpty()) && bucket.tryAcquire(now)) {
+            return true;
+        }
+
+        if (held == null) {
+            held = createHeld(record.getEvent());
+        }
+        held.add(new HeldRecord<>(record, now, heldSequence++));
+        throttledRecords.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * Looks at the head of every event's held records whose event now has a token available, and releases the one
+     * with the highest priority (the longest held, on a tie).  Nothing is released if the competitor outranks it.
+     * @param competitor The next record waiting in the queue, or null.
+     * @return The released record, or null.
+     */
+    SmartQueueRecord<E, D> release(SmartQueueRecord<E, D> competitor) {
+        Queue<HeldRecord<E, D>>[] table = heldRecords;
+        long now = System.nanoTime();
+        HeldRecord<E, D> best = null;
+        int bestOrdinal = -1;
+        for (int i = 0; i < table.length; i++) {
+            Queue<HeldRecord<E, D>> held = table[i];
+            if (held == null || held.isEmpty()) {
+                continue;
+            }
+
+            TokenBucket bucket = getBucket(i);
+            if (bucket != null && bucket.nanosUntilAvailable(now) > 0) {
+                continue;
+            }
+
+            HeldRecord<E, D> head = held.peek();
+            if (best == null || head.compareTo(best) < 0) {
+                best = head;
+                bestOrdinal = i;
+            }
+        }
+
+        if (best == null || (competitor != null && competitor.compareTo(best.record) < 0)) {
+            return null;
+        }
+
+        TokenBucket bucket = getBucket(bestOrdinal);
+        if (bucket != null) {
+            bucket.tryAcquire(now);
+        }
+        table[bestOrdinal].remove();
+        throttledNanos.addAndGet(now - best.heldAt);
+        return best.record;
+    }
+
+    /**
+     * @return Nanos until the next held record can be released, 0 if one can be released now,
+     *         or -1 if nothing is held.
+     */
+    long nanosUntilNextRelease() {
+        Queue<HeldRecord<E, D>>[] table = heldRecords;
+        long now = System.nanoTime();
+        long next = -1;
+        for (int i = 0; i < table.length; i++) {
+            Queue<HeldRecord<E, D>> held = table[i];
+            if (held == null || held.isEmpty()) {
+                continue;
+            }
+
+            TokenBucket bucket = getBucket(i);
+            long wait = bucket == null ? 0 : bucket.nanosUntilAvailable(now);
+            if (wait == 0) {
+                return 0;
+            }
+            next = next == -1 ? wait : Math.min(next, wait);
+        }
+        return next;
+    }
+
+    /**
+     * Drops any held records in the given set.
+     */
+    void purge(Set<SmartQueueRecord<E, D>> records) {
+        for (Queue<HeldRecord<E, D>> held : heldRecords) {
+            if (held == null || held.isEmpty()) {
+                continue;
+            }
+            Iterator<HeldRecord<E, D>> iterator = held.iterator();
+            while (iterator.hasNext()) {
+                if (records.contains(iterator.next().record)) {
+                    iterator.remove();
+                }
+            }
+        }
+    }
+
+    long getThrottledRecordCount() {
+        return throttledRecords.get();
+    }
+
+    long getThrottledMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(throttledNanos.get());
+    }
+
+    private TokenBucket getBucket(int ordinal) {
+        TokenBucket[] table = buckets;
+        return ordinal < table.length ? table[ordinal] : null;
+    }
+
+    private Queue<HeldRecord<E, D>> getHeld(int ordinal) {
+        return ordinal < heldRecords.length ? heldRecords[ordinal] : null;
+    }
+
+    private Queue<HeldRecord<E, D>> createHeld(E event) {
+        if (heldRecords.length == 0) {
+            heldRecords = newTable(event.getDeclaringClass().getEnumConstants().length);
+        }
+        Queue<HeldRecord<E, D>> held = new PriorityQueue<>();
+        heldRecords[event.ordinal()] = held;
+        return held;
+    }
+
+    private TokenBucket[] ensureCapacity(E event) {
+        TokenBucket[] table = buckets;
+        if (table.length == 0) {
+            return new TokenBucket[event.getDeclaringClass().getEnumConstants().length];
+        }
+        return table.clone();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <E extends Enum, D> Queue<HeldRecord<E, D>>[] newTable(int size) {
+        return new Queue[size];
+    }
+
+    private static final class HeldRecord<E extends Enum, D> implements Comparable<HeldRecord<E, D>> {
+        private final SmartQueueRecord<E, D> record;
+        private final long heldAt;
+        private final long sequence;
+
+        private HeldRecord(SmartQueueRecord<E, D> record, long heldAt, long sequence) {
+            this.record = record;
+            this.heldAt = heldAt;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(HeldRecord<E, D> o) {
+            int byPriority = record.compareTo(o.record);
+            if (byPriority != 0) {
+                return byPriority;
+            }
+            return sequence < o.sequence ? -1 : (sequence > o.sequence ? 1 : 0);
+        }
+    }
+
+    /**
+     * Classic token bucket.  Starts full, refills continuously up to its burst size.
+     */
+    private static final class TokenBucket {
+        private final double permitsPerNano;
+        private final double capacity;
+        private double tokens;
+        private long lastRefill;
+
+        private TokenBucket(double permitsPerSecond, int burst, long now) {
+            this.permitsPerNano = permitsPerSecond / TimeUnit.SECONDS.toNanos(1);
+            this.capacity = burst;
+            this.tokens = burst;
+            this.lastRefill = now;
+        }
+
+        private boolean tryAcquire(long now) {
+            refill(now);
+            if (tokens >= 1) {
+                tokens -= 1;
+                return true;
+            }
+            return false;
+        }
+
+        private long nanosUntilAvailable(long now) {
+            refill(now);
+            if (tokens >= 1) {
+                return 0;
+            }
+            return Math.max(1, (long) Math.ceil((1 - tokens) / permitsPerNano));
+        }
+
+        private void refill(long now) {
+            if (now > lastRefill) {
+                tokens = Math.min(capacity, tokens + (now - lastRefill) * permitsPerNano);
+                lastRefill = now;
+            }
+        }
+    }
+}
@@ -28,7 +28,7 @@ final class SmartQueueRecord<E extends Enum, D> implements Comparable<SmartQueue
 
     private final long createdAt;
     private final long lifespan;
-    private final SmartQueuePriority priority;
+    private final int priority;
     private final E deferUntil;
     private final Class dependsOn;
     private final D data;
@@ -36,19 +36,19 @@ final class SmartQueueRecord<E extends Enum, D> implements Comparable<SmartQueue
 
     @Override
     public int compareTo(SmartQueueRecord<E, D> o) {
-        int priorityA = priority.ordinal();
-        int priorityB = o.getPriority().ordinal();
+        int priorityA = priority;
+        int priorityB = o.getPriority();
 
         if (priorityA > priorityB) {
             return -1;
-        } else if (priorityB < priorityA) {
+        } else if (priorityA < priorityB) {
             return 1;
         } return 0;
     }
 
     static class Builder<E extends Enum, D> {
         private long lifespan = 0;
-        private SmartQueuePriority priority = SmartQueuePriority.NORMAL;
+        private int priority = SmartQueuePriority.NORMAL.getLevel();
         private E deferUntil = null;
         private Class dependsOn = null;
         private final D data;
@@ -65,7 +65,16 @@ final class SmartQueueRecord<E extends Enum, D> implements Comparable<SmartQueue
         }
 
         public Builder<E, D> withPriority(SmartQueuePriority priority) {
-            this.priority = priority == null ? SmartQueuePriority.NORMAL : priority;
+            this.priority = (priority == null ? SmartQueuePriority.NORMAL : priority).getLevel();
+            return this;
+        }
+
+        public Builder<E, D> withPriority(int level) {
+            if (level < SmartQueuePriority.MIN_LEVEL || level > SmartQueuePriority.MAX_LEVEL) {
+                throw new IllegalArgumentException(String.format("Priority %d out of range [%d, %d]",
+                        level, SmartQueuePriority.MIN_LEVEL, SmartQueuePriority.MAX_LEVEL));
+            }
+            this.priority = level;
             return this;
         }
 
@@ -107,7 +116,7 @@ final class SmartQueueRecord<E extends Enum, D> implements Comparable<SmartQueue
         return lifespan;
     }
 
-    SmartQueuePriority getPriority() {
+    int getPriority() {
         return priority;
     }
 
@@ -132,7 +141,7 @@ final class SmartQueueRecord<E extends Enum, D> implements Comparable<SmartQueue
         StringBuilder builder = new StringBuilder("Record::");
         builder.append("|ev").append(event.name());
         builder.append("|data\"").append(data.toString()).append("\"");
-        builder.append("|pri").append(priority.name());
+        builder.append("|pri").append(priority);
         if (deferUntil != null) {
             builder.append("|dep").append(deferUntil.name());
         }
@@ -0,0 +1,172 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Alex Hart
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.redspace.smartqueue;
+
+import java.lang.ref.WeakReference;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Worker for a SmartQueue on a shared SmartQueueScheduler.  Submits itself to the scheduler's executor when there is
+ * work, and is never submitted more than once at a time.  Keeps at most one pending wakeup on the timer, for the
+ * earliest time a rate limited record can be released.
+ */
+final class SmartQueueScheduledWorker<E extends Enum, D> implements SmartQueueDispatcher<E, D>, Runnable {
+
+    private WeakReference<SmartQueue<E, D>> weakSmartQueue = new WeakReference<>(null);
+    private WeakReference<SmartQueueProcessor<E, D>> weakProcessor = new WeakReference<>(null);
+
+    private final Executor executor;
+    private final ScheduledExecutorService timer;
+    private final int quantum;
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private volatile Thread workerThread;
+    private Wakeup wakeup;
+
+    SmartQueueScheduledWorker(SmartQueueProcessor<E, D> processor, Executor executor, ScheduledExecutorService timer,
+                              int quantum) {
+        this.weakProcessor = new WeakReference<>(processor);
+        this.executor = executor;
+        this.timer = timer;
+        this.quantum = quantum;
+    }
+
+    @Override
+    public void setQueue(SmartQueue<E, D> queue) {
+        weakSmartQueue = new WeakReference<>(queue);
+    }
+
+    @Override
+    public void start() {
+        signal();
+    }
+
+    @Override
+    public void signal() {
+        if (scheduled.compareAndSet(false, true)) {
+            try {
+                executor.execute(this);
+            } catch (RejectedExecutionException e) {
+                scheduled.set(false);
+                logError("Scheduler rejected queue, has it been shut down?", e);
+            }
+        }
+    }
+
+    @Override
+    public boolean isWorkerThread() {
+        return workerThread == Thread.currentThread();
+    }
+
+    @Override
+    public void run() {
+        SmartQueue<E, D> smartQueue = weakSmartQueue.get();
+        SmartQueueProcessor<E, D> smartQueueProcessor = weakProcessor.get();
+        if (smartQueue == null || smartQueueProcessor == null) {
+            return;
+        }
+
+        workerThread = Thread.currentThread();
+        try {
+            for (int i = 0; i < quantum && smartQueue.nanosUntilReady() == 0; i++) {
+                SmartQueueRecord<E, D> record = smartQueue.remove();
+                if (record == null) {
+                    continue;
+                }
+                smartQueue.getLogger().debug(String.format("Worker Processing %s", record.toString()));
+                Object dispatch = SmartQueueEvents.beginDispatch(record);
+                try {
+                    smartQueueProcessor.process(record.getEvent(), record.getData());
+                } catch (RuntimeException e) {
+                    smartQueue.getLogger().error(String.format("Processor failed on %s", record.toString()), e);
+                } finally {
+                    SmartQueueEvents.endDispatch(dispatch);
+                }
+            }
+        } finally {
+            workerThread = null;
+            scheduled.set(false);
+        }
+
+        long readyNanos = smartQueue.nanosUntilReady();
+        if (readyNanos == 0) {
+            signal();
+        } else if (readyNanos > 0) {
+            scheduleWakeup(readyNanos);
+        }
+    }
+
+    /**
+     * Schedules a wakeup, unless one is already pending for the same time or sooner.
+     */
+    private synchronized void scheduleWakeup(long delayNanos) {
+        long deadline = System.nanoTime() + delayNanos;
+        if (wakeup != null && wakeup.deadline - deadline <= 0) {
+            return;
+        }
+
+        Wakeup next = new Wakeup(deadline);
+        try {
+            next.future = timer.schedule(next, delayNanos, TimeUnit.NANOSECONDS);
+        } catch (RejectedExecutionException e) {
+            logError("Scheduler rejected wakeup, has it been shut down?", e);
+            return;
+        }
+        if (wakeup != null) {
+            wakeup.future.cancel(false);
+        }
+        wakeup = next;
+    }
+
+    private void logError(String message, Throwable t) {
+        SmartQueue<E, D> smartQueue = weakSmartQueue.get();
+        if (smartQueue != null) {
+            smartQueue.getLogger().error(message, t);
+        }
+    }
+
+    private final class Wakeup implements Runnable {
+        private final long deadline;
+        private ScheduledFuture<?> future;
+
+        private Wakeup(long deadline) {
+            this.deadline = deadline;
+        }
+
+        @Override
+        public void run() {
+            synchronized (SmartQueueScheduledWorker.this) {
+                if (wakeup == this) {
+                    wakeup = null;
+                }
+            }
+            signal();
+        }
+    }
+}
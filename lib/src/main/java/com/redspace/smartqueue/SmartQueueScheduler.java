@@ -0,0 +1,130 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Alex Hart
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.redspace.smartqueue;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Runs many SmartQueues on a small, shared set of threads, instead of a dedicated Worker thread each.
+ *
+ * Queues with work take turns, processing at most a quantum of records before resubmitting themselves to the back of
+ * the executor's line.  On a FIFO executor (such as the fixed pools from create(int)) that makes turns round-robin.
+ * Each queue is still processed serially, one record at a time.  A queue with nothing to do holds no thread, and at
+ * most one pending wakeup on the timer while rate limited records are held back.
+ *
+ * For virtual threads, pass a thread-per-task executor to create(Executor), for example
+ * Executors.newVirtualThreadPerTaskExecutor().  Each queue with work then gets its own virtual thread, so a blocking
+ * processor doesn't take a slot away from other queues.
+ */
+public final class SmartQueueScheduler {
+
+    public static final int DEFAULT_QUANTUM = 64;
+
+    private final Executor executor;
+    private final ScheduledExecutorService timer;
+    private final int quantum;
+
+    /**
+     * @param executor Where queues are run, and where delayed wakeups for rate limited records are scheduled.
+     * @param quantum  Records a queue may process before yielding to other queues.
+     */
+    public SmartQueueScheduler(ScheduledExecutorService executor, int quantum) {
+        this(executor, executor, quantum);
+    }
+
+    /**
+     * @param executor Where queues are run.
+     * @param timer    Where delayed wakeups for rate limited records are scheduled.  Only ever runs short tasks.
+     * @param quantum  Records a queue may process before yielding to other queues.
+     */
+    public SmartQueueScheduler(Executor executor, ScheduledExecutorService timer, int quantum) {
+        if (quantum < 1) {
+            throw new IllegalArgumentException("quantum must be at least 1");
+        }
+        this.executor = executor;
+        this.timer = timer;
+        this.quantum = quantum;
+    }
+
+    /**
+     * Creates a scheduler backed by a fixed pool of threads.
+     * @param threads Number of threads to share between queues.
+     */
+    public static SmartQueueScheduler create(int threads) {
+        return new SmartQueueScheduler(newTimer(threads, null), DEFAULT_QUANTUM);
+    }
+
+    /**
+     * Creates a scheduler backed by a fixed pool of threads from the given factory.
+     * @param threads Number of threads to share between queues.
+     * @param factory Creates the pool's threads.
+     */
+    public static SmartQueueScheduler create(int threads, ThreadFactory factory) {
+        return new SmartQueueScheduler(newTimer(threads, factory), DEFAULT_QUANTUM);
+    }
+
+    /**
+     * Creates a scheduler which runs queues on the given executor, with a single daemon thread for delayed wakeups.
+     * @param executor Where queues are run, such as a virtual thread per task executor.
+     */
+    public static SmartQueueScheduler create(Executor executor) {
+        ThreadFactory factory = new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "SmartQueueScheduler-timer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+        return new SmartQueueScheduler(executor, newTimer(1, factory), DEFAULT_QUANTUM);
+    }
+
+    /**
+     * Stops accepting work, shutting down the executor and timer.  Turns already queued still run, but queues using
+     * this scheduler won't be given new ones.
+     */
+    public void shutdown() {
+        if (executor instanceof ExecutorService) {
+            ((ExecutorService) executor).shutdown();
+        }
+        timer.shutdown();
+    }
+
+    <E extends Enum, D> SmartQueueDispatcher<E, D> newWorker(SmartQueueProcessor<E, D> processor) {
+        return new SmartQueueScheduledWorker<>(processor, executor, timer, quantum);
+    }
+
+    private static ScheduledThreadPoolExecutor newTimer(int threads, ThreadFactory factory) {
+        ScheduledThreadPoolExecutor timer = factory == null
+                ? new ScheduledThreadPoolExecutor(threads)
+                : new ScheduledThreadPoolExecutor(threads, factory);
+        timer.setRemoveOnCancelPolicy(true);
+        return timer;
+    }
+}
@@ -26,19 +26,34 @@ package com.redspace.smartqueue;
 
 import java.lang.ref.WeakReference;
 
-final class SmartQueueWorker<E extends Enum, D> extends Thread {
+final class SmartQueueWorker<E extends Enum, D> extends Thread implements SmartQueueDispatcher<E, D> {
 
     private WeakReference<SmartQueue<E, D>> weakSmartQueue = new WeakReference<>(null);
     private WeakReference<SmartQueueProcessor<E, D>> weakProcessor = new WeakReference<>(null);
+    private final Object lock;
 
-    public SmartQueueWorker(SmartQueueProcessor<E, D> processor) {
+    public SmartQueueWorker(SmartQueueProcessor<E, D> processor, Object lock) {
         this.weakProcessor = new WeakReference<>(processor);
+        this.lock = lock;
     }
 
-    void setQueue(SmartQueue<E, D> queue) {
+    @Override
+    public void setQueue(SmartQueue<E, D> queue) {
         weakSmartQueue = new WeakReference<>(queue);
     }
 
+    @Override
+    public void signal() {
+        synchronized (lock) {
+            lock.notify();
+        }
+    }
+
+    @Override
+    public boolean isWorkerThread() {
+        return Thread.currentThread() == this;
+    }
+
     @Override
     public void run() {
         while (true) {
@@ -51,7 +66,12 @@ final class SmartQueueWorker<E extends Enum, D> extends Thread {
             SmartQueueRecord<E, D> record;
             while ((record = smartQueue.remove()) != null) {
                 smartQueue.getLogger().debug(String.format("Worker Processing %s", record.toString()));
-                smartQueueProcessor.process(record.getEvent(), record.getData());
+                Object dispatch = SmartQueueEvents.beginDispatch(record);
+                try {
+                    smartQueueProcessor.process(record.getEvent(), record.getData());
+                } finally {
+                    SmartQueueEvents.endDispatch(dispatch);
+                }
             }
 
             smartQueue.onWorkerDone();
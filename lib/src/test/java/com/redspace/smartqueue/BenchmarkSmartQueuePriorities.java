@@ -0,0 +1,107 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Alex Hart
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.redspace.smartqueue;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares a default (PriorityBlockingQueue backed) SmartQueue against one built withBucketedPriorities(), by
+ * timing how long it takes to submit and process a batch of records with random numeric priorities.
+ *
+ * Not part of the test suite.  Run main() directly, optionally passing the record count and number of rounds.
+ */
+public final class BenchmarkSmartQueuePriorities {
+
+    private enum EventType {
+        A, B, C, D
+    }
+
+    private BenchmarkSmartQueuePriorities() {
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+        for (int warmup = 0; warmup < 3; warmup++) {
+            run(false, count);
+            run(true, count);
+        }
+
+        long heapNanos = 0;
+        long bucketNanos = 0;
+        for (int round = 0; round < rounds; round++) {
+            heapNanos += run(false, count);
+            bucketNanos += run(true, count);
+        }
+
+        System.out.println(String.format("%d records, average of %d rounds: PriorityBlockingQueue %dms, bucketed %dms",
+                count, rounds, TimeUnit.NANOSECONDS.toMillis(heapNanos / rounds),
+                TimeUnit.NANOSECONDS.toMillis(bucketNanos / rounds)));
+        System.exit(0);
+    }
+
+    private static long run(boolean bucketed, int count) throws InterruptedException {
+        CountingProcessor processor = new CountingProcessor(count);
+        SmartQueue.QueueBuilder<EventType, Integer> builder = SmartQueue.builder(processor);
+        if (bucketed) {
+            builder.withBucketedPriorities();
+        }
+        SmartQueue<EventType, Integer> smartQueue = builder.build();
+
+        Random random = new Random(42);
+        EventType[] events = EventType.values();
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            smartQueue.createRecord(events[i % events.length], i)
+                    .withPriority(random.nextInt(SmartQueuePriority.MAX_LEVEL + 1))
+                    .submit();
+        }
+        return processor.awaitNanosSince(start);
+    }
+
+    /**
+     * Waits on itself, which also keeps it strongly reachable while the worker needs it.
+     */
+    private static final class CountingProcessor implements SmartQueueProcessor<EventType, Integer> {
+        private final CountDownLatch latch;
+
+        private CountingProcessor(int count) {
+            this.latch = new CountDownLatch(count);
+        }
+
+        @Override
+        public void process(EventType event, Integer data) {
+            latch.countDown();
+        }
+
+        private long awaitNanosSince(long start) throws InterruptedException {
+            latch.await();
+            return System.nanoTime() - start;
+        }
+    }
+}
@@ -25,13 +25,30 @@
 package com.redspace.smartqueue;
 
 import com.redspace.smartqueue.impl.SystemOutLogger;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 
 @RunWith(JUnit4.class)
 public class TestSmartQueue {
@@ -42,9 +59,18 @@ public class TestSmartQueue {
         A, B, C, D
     }
 
+    private enum TracedEventType {
+        TRACED_A, TRACED_B, TRACED_C
+    }
+
     private SmartQueue<EventType, String> smartQueue;
     private int count;
 
+    /**
+     * Queues only hold their processors weakly, so tests creating their own keep them here.
+     */
+    private final List<SmartQueueProcessor<EventType, String>> processors = new ArrayList<>();
+
     private final SmartQueueProcessor<EventType, String> eventQueueProcessor = new SmartQueueProcessor<EventType, String>() {
         @Override
         public void process(EventType event, String data) {
@@ -53,6 +79,13 @@ public class TestSmartQueue {
         }
     };
 
+    private final SmartQueueProcessor<TracedEventType, String> tracedProcessor =
+            new SmartQueueProcessor<TracedEventType, String>() {
+        @Override
+        public void process(TracedEventType event, String data) {
+        }
+    };
+
     @Before
     public void setUp() {
         smartQueue = SmartQueue.create(eventQueueProcessor, logger);
@@ -78,6 +111,412 @@ public class TestSmartQueue {
         Assert.assertTrue(count == 1000);
     }
 
+    /**
+     * Limits A to 10 per second and submits 5 A and 5 B records.  B should not be held back
+     * behind A, and A should trickle out over the following half second.
+     */
+    @Test
+    public void testRateLimit() {
+        final AtomicIntegerArray counts = new AtomicIntegerArray(EventType.values().length);
+        SmartQueueProcessor<EventType, String> processor = new SmartQueueProcessor<EventType, String>() {
+            @Override
+            public void process(EventType event, String data) {
+                counts.incrementAndGet(event.ordinal());
+            }
+        };
+        processors.add(processor);
+        SmartQueue<EventType, String> limitedQueue = SmartQueue.create(processor, logger);
+        limitedQueue.setRateLimit(EventType.A, 10, 1);
+
+        for (int i = 0; i < 5; i++) {
+            limitedQueue.createRecord(EventType.A, "" + i).submit();
+            limitedQueue.createRecord(EventType.B, "" + i).submit();
+        }
+
+        doWait(150);
+        Assert.assertEquals(5, counts.get(EventType.B.ordinal()));
+        Assert.assertTrue(counts.get(EventType.A.ordinal()) < 5);
+
+        doWait(1000);
+        Assert.assertEquals(5, counts.get(EventType.A.ordinal()));
+        Assert.assertEquals(4, limitedQueue.getThrottledRecordCount());
+        Assert.assertTrue(limitedQueue.getThrottledMillis() > 0);
+    }
+
+    /**
+     * Limits A to 20 per second, holds back a run of idle A records, then submits a critical A record.
+     * The critical record should be released next rather than waiting behind the idle ones.
+     */
+    @Test
+    public void testRateLimitKeepsPriority() {
+        final List<String> processed = Collections.synchronizedList(new ArrayList<String>());
+        SmartQueueProcessor<EventType, String> processor = new SmartQueueProcessor<EventType, String>() {
+            @Override
+            public void process(EventType event, String data) {
+                processed.add(data);
+            }
+        };
+        processors.add(processor);
+        SmartQueue<EventType, String> limitedQueue = SmartQueue.create(processor, logger);
+        limitedQueue.setRateLimit(EventType.A, 20, 1);
+
+        for (int i = 0; i < 5; i++) {
+            limitedQueue.createRecord(EventType.A, "idle" + i).withPriority(SmartQueuePriority.IDLE).submit();
+        }
+        doWait(20);
+        limitedQueue.createRecord(EventType.A, "critical").withPriority(SmartQueuePriority.CRITICAL).submit();
+
+        doWait(500);
+        Assert.assertEquals(6, processed.size());
+        Assert.assertEquals("idle0", processed.get(0));
+        Assert.assertEquals("critical", processed.get(1));
+    }
+
+    /**
+     * Binds two inline processors to A and a slow executor processor to B.  A should be processed by
+     * both of its processors without waiting on B, and C should go nowhere.
+     */
+    @Test
+    public void testProcessorRegistry() {
+        final AtomicInteger aCount = new AtomicInteger();
+        final AtomicInteger bCount = new AtomicInteger();
+        SmartQueueProcessor<EventType, String> aProcessor = new SmartQueueProcessor<EventType, String>() {
+            @Override
+            public void process(EventType event, String data) {
+                Assert.assertEquals(EventType.A, event);
+                aCount.incrementAndGet();
+            }
+        };
+        SmartQueueProcessor<EventType, String> slowProcessor = new SmartQueueProcessor<EventType, String>() {
+            @Override
+            public void process(EventType event, String data) {
+                doWait(500);
+                bCount.incrementAndGet();
+            }
+        };
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        SmartQueueProcessorRegistry<EventType, String> registry = new SmartQueueProcessorRegistry<>(EventType.class);
+        registry.bind(EventType.A, aProcessor)
+                .bind(EventType.A, aProcessor)
+                .bind(EventType.B, slowProcessor, executor);
+        processors.add(registry);
+        SmartQueue<EventType, String> routedQueue = SmartQueue.create(registry, logger);
+
+        for (int i = 0; i < 4; i++) {
+            routedQueue.createRecord(EventType.B, "" + i).submit();
+            routedQueue.createRecord(EventType.A, "" + i).submit();
+            routedQueue.createRecord(EventType.C, "" + i).submit();
+        }
+
+        doWait(200);
+        Assert.assertEquals(8, aCount.get());
+        Assert.assertEquals(0, bCount.get());
+        Assert.assertFalse(registry.hasBindings(EventType.C));
+
+        doWait(1000);
+        Assert.assertEquals(4, bCount.get());
+        executor.shutdown();
+    }
+
+    /**
+     * Binds A to a shut down executor.  The rejected binding should run inline instead of killing the
+     * worker, and later records should still be processed.
+     */
+    @Test
+    public void testProcessorRegistryRejectedExecutor() {
+        final AtomicInteger aCount = new AtomicInteger();
+        SmartQueueProcessor<EventType, String> aProcessor = new SmartQueueProcessor<EventType, String>() {
+            @Override
+            public void process(EventType event, String data) {
+                aCount.incrementAndGet();
+            }
+        };
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        executor.shutdown();
+        SmartQueueProcessorRegistry<EventType, String> registry = new SmartQueueProcessorRegistry<>(EventType.class);
+        registry.bind(EventType.A, aProcessor, executor);
+        processors.add(registry);
+        SmartQueue<EventType, String> routedQueue = SmartQueue.create(registry, logger);
+
+        for (int i = 0; i < 3; i++) {
+            routedQueue.createRecord(EventType.A, "" + i).submit();
+        }
+
+        doWait(200);
+        Assert.assertEquals(3, aCount.get());
+    }
+
+    /**
+     * Defers 3 records and queues 5 more behind a slow record, all depending on String.  Removing the
+     * dependency should purge all 8 straight away, and hand them to the listener.
+     */
+    @Test
+    public void testRemoveDependencyPurges() {
+        final AtomicInteger processedCount = new AtomicInteger();
+        final AtomicInteger purgedCount = new AtomicInteger();
+        SmartQueueProcessor<EventType, String> processor = new SmartQueueProcessor<EventType, String>() {
+            @Override
+            public void process(EventType event, String data) {
+                if (data.equals("slow")) {
+                    doWait(300);
+                }
+                processedCount.incrementAndGet();
+            }
+        };
+        processors.add(processor);
+        SmartQueue<EventType, String> smartQueue = SmartQueue.create(processor, logger);
+        smartQueue.addDependency(String.class);
+
+        for (int i = 0; i < 3; i++) {
+            smartQueue.createRecord(EventType.A, "" + i)
+                    .deferUntil(EventType.D)
+                    .dependsOn(String.class)
+                    .submit();
+        }
+        doWait(100);
+
+        smartQueue.createRecord(EventType.B, "slow").submit();
+        for (int i = 0; i < 5; i++) {
+            smartQueue.createRecord(EventType.C, "" + i).dependsOn(String.class).submit();
+        }
+        smartQueue.removeDependency(String.class, new SmartQueuePurgeListener<EventType, String>() {
+            @Override
+            public void onPurged(EventType event, String data) {
+                purgedCount.incrementAndGet();
+            }
+        });
+        smartQueue.createRecord(EventType.D, "release").submit();
+
+        doWait(500);
+        Assert.assertEquals(8, purgedCount.get());
+        Assert.assertEquals(2, processedCount.get());
+    }
+
+    /**
+     * Creates 50 queues sharing a four thread scheduler, and submits 100 records to each.  All of them should
+     * be processed, no queue should ever be in its processor on two threads at once, and once the queues are
+     * idle they should hold no threads.
+     */
+    @Test
+    public void testSharedScheduler() {
+        final AtomicInteger processed = new AtomicInteger();
+        final AtomicInteger overlaps = new AtomicInteger();
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(4);
+        SmartQueueScheduler scheduler = new SmartQueueScheduler(executor, 8);
+
+        List<SmartQueue<EventType, String>> queues = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            final AtomicBoolean busy = new AtomicBoolean();
+            SmartQueueProcessor<EventType, String> processor = new SmartQueueProcessor<EventType, String>() {
+                @Override
+                public void process(EventType event, String data) {
+                    if (!busy.compareAndSet(false, true)) {
+                        overlaps.incrementAndGet();
+                    }
+                    Thread.yield();
+                    processed.incrementAndGet();
+                    busy.set(false);
+                }
+            };
+            processors.add(processor);
+            queues.add(SmartQueue.create(processor, logger, scheduler));
+        }
+        for (SmartQueue<EventType, String> queue : queues) {
+            for (int i = 0; i < 100; i++) {
+                queue.createRecord(EventType.values()[i % 4], "" + i).submit();
+            }
+        }
+
+        doWait(3000);
+        Assert.assertEquals(5000, processed.get());
+        Assert.assertEquals(0, overlaps.get());
+        Assert.assertEquals(0, executor.getActiveCount());
+        Assert.assertEquals(0, executor.getQueue().size());
+        scheduler.shutdown();
+    }
+
+    /**
+     * Floods one queue with slow records on a single thread scheduler, then submits one record to another
+     * queue.  The lone record should get a turn long before the flood is done.
+     */
+    @Test
+    public void testSharedSchedulerFairness() {
+        final AtomicInteger floodCount = new AtomicInteger();
+        final AtomicInteger loneCount = new AtomicInteger();
+        SmartQueueProcessor<EventType, String> floodProcessor = new SmartQueueProcessor<EventType, String>() {
+            @Override
+            public void process(EventType event, String data) {
+                doWait(2);
+                floodCount.incrementAndGet();
+            }
+        };
+        SmartQueueProcessor<EventType, String> loneProcessor = new SmartQueueProcessor<EventType, String>() {
+            @Override
+            public void process(EventType event, String data) {
+                loneCount.incrementAndGet();
+            }
+        };
+        processors.add(floodProcessor);
+        processors.add(loneProcessor);
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1);
+        SmartQueueScheduler scheduler = new SmartQueueScheduler(executor, 16);
+        SmartQueue<EventType, String> floodQueue = SmartQueue.create(floodProcessor, logger, scheduler);
+        SmartQueue<EventType, String> loneQueue = SmartQueue.create(loneProcessor, logger, scheduler);
+
+        for (int i = 0; i < 500; i++) {
+            floodQueue.createRecord(EventType.A, "" + i).submit();
+        }
+        doWait(50);
+        loneQueue.createRecord(EventType.B, "lone").submit();
+
+        doWait(300);
+        Assert.assertEquals(1, loneCount.get());
+        Assert.assertTrue(floodCount.get() < 500);
+        executor.shutdownNow();
+    }
+
+    /**
+     * Submits 5000 rate limited records to a scheduled queue.  While they are held back, the queue should
+     * keep at most one turn and one wakeup pending on the executor.
+     */
+    @Test
+    public void testSharedSchedulerWakeupsBounded() {
+        final AtomicInteger processed = new AtomicInteger();
+        SmartQueueProcessor<EventType, String> processor = new SmartQueueProcessor<EventType, String>() {
+            @Override
+            public void process(EventType event, String data) {
+                processed.incrementAndGet();
+            }
+        };
+        processors.add(processor);
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(2);
+        executor.setRemoveOnCancelPolicy(true);
+        SmartQueueScheduler scheduler = new SmartQueueScheduler(executor, SmartQueueScheduler.DEFAULT_QUANTUM);
+        SmartQueue<EventType, String> limitedQueue = SmartQueue.create(processor, logger, scheduler);
+        limitedQueue.setRateLimit(EventType.A, 1, 1);
+
+        for (int i = 0; i < 5000; i++) {
+            limitedQueue.createRecord(EventType.A, "" + i).submit();
+        }
+
+        doWait(200);
+        Assert.assertEquals(1, processed.get());
+        Assert.assertTrue(executor.getQueue().size() <= 2);
+        executor.shutdownNow();
+    }
+
+    /**
+     * Submitting to a queue whose scheduler has been shut down should not throw into the caller.
+     */
+    @Test
+    public void testSharedSchedulerShutdown() {
+        SmartQueueScheduler scheduler = SmartQueueScheduler.create(1);
+        SmartQueue<EventType, String> scheduledQueue = SmartQueue.create(eventQueueProcessor, logger, scheduler);
+        scheduler.shutdown();
+        doWait(50);
+
+        scheduledQueue.createRecord(EventType.A, "after shutdown").submit();
+        scheduledQueue.createRecord(EventType.A, "after shutdown").submit();
+    }
+
+    /**
+     * Queues records with numeric priorities behind a slow record on a bucketed queue.  They should be
+     * processed highest level first.
+     */
+    @Test
+    public void testBucketedPriorities() {
+        final List<String> processed = Collections.synchronizedList(new ArrayList<String>());
+        SmartQueueProcessor<EventType, String> processor = new SmartQueueProcessor<EventType, String>() {
+            @Override
+            public void process(EventType event, String data) {
+                if (data.equals("slow")) {
+                    doWait(300);
+                }
+                processed.add(data);
+            }
+        };
+        processors.add(processor);
+        SmartQueue<EventType, String> bucketedQueue = SmartQueue.builder(processor)
+                .withLogger(logger)
+                .withBucketedPriorities()
+                .build();
+
+        bucketedQueue.createRecord(EventType.A, "slow").submit();
+        doWait(100);
+        bucketedQueue.createRecord(EventType.A, "10").withPriority(10).submit();
+        bucketedQueue.createRecord(EventType.B, "1000").withPriority(1000).submit();
+        bucketedQueue.createRecord(EventType.C, "normal").withPriority(SmartQueuePriority.NORMAL).submit();
+        bucketedQueue.createRecord(EventType.D, "513").withPriority(513).submit();
+
+        doWait(500);
+        Assert.assertEquals(5, processed.size());
+        Assert.assertEquals("slow", processed.get(0));
+        Assert.assertEquals("1000", processed.get(1));
+        Assert.assertEquals("513", processed.get(2));
+        Assert.assertEquals("normal", processed.get(3));
+        Assert.assertEquals("10", processed.get(4));
+    }
+
+    /**
+     * Records a deferred record, a record with a missing dependency, and the record that releases the deferred
+     * one, and checks each hook emitted its Flight Recorder events.  Events are filtered down to this test's
+     * event types, since queues from other tests may still be running.
+     */
+    @Test
+    public void testFlightRecorderEvents() throws IOException {
+        String[] names = {"Add", "Remove", "Defer", "EnqueueDeferred", "Expire", "Dispatch"};
+        Recording recording = new Recording();
+        for (String name : names) {
+            recording.enable("com.redspace.smartqueue." + name);
+        }
+        recording.start();
+
+        SmartQueue<TracedEventType, String> tracedQueue = SmartQueue.create(tracedProcessor, logger);
+        tracedQueue.createRecord(TracedEventType.TRACED_B, "deferred")
+                .deferUntil(TracedEventType.TRACED_A)
+                .submit();
+        doWait(100);
+        tracedQueue.createRecord(TracedEventType.TRACED_C, "missing dependency")
+                .dependsOn(Integer.class)
+                .submit();
+        tracedQueue.createRecord(TracedEventType.TRACED_A, "release").submit();
+        doWait(200);
+
+        recording.stop();
+        Path file = Files.createTempFile("smartqueue", ".jfr");
+        recording.dump(file);
+        recording.close();
+
+        Map<String, Integer> counts = new HashMap<>();
+        for (String name : names) {
+            counts.put(name, 0);
+        }
+        RecordedEvent enqueued = null;
+        for (RecordedEvent event : RecordingFile.readAllEvents(file)) {
+            if (!event.getString("eventType").startsWith("TRACED_")) {
+                continue;
+            }
+            String name = event.getEventType().getName().substring("com.redspace.smartqueue.".length());
+            counts.put(name, counts.get(name) + 1);
+            if (name.equals("EnqueueDeferred")) {
+                enqueued = event;
+            }
+        }
+        Files.delete(file);
+
+        Assert.assertEquals(3, (int) counts.get("Add"));
+        Assert.assertEquals(1, (int) counts.get("Defer"));
+        Assert.assertEquals(1, (int) counts.get("EnqueueDeferred"));
+        Assert.assertEquals("TRACED_B", enqueued.getString("eventType"));
+        Assert.assertEquals("TRACED_A", enqueued.getString("releasedBy"));
+        Assert.assertEquals("deferred".length(), enqueued.getInt("payloadSize"));
+        Assert.assertEquals(1, (int) counts.get("Expire"));
+        Assert.assertEquals(2, (int) counts.get("Remove"));
+        Assert.assertEquals(2, (int) counts.get("Dispatch"));
+    }
+
     private void doWait(long millis) {
         try {
             Thread.sleep(millis);
@@ -0,0 +1,114 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Alex Hart
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.redspace.smartqueue;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.Iterator;
+
+@RunWith(JUnit4.class)
+public class TestSmartQueueBucketQueue {
+
+    private enum EventType {
+        A, B
+    }
+
+    private static SmartQueueRecord<EventType, String> record(int level, String data) {
+        return new SmartQueueRecord.Builder<EventType, String>(EventType.A, data).withPriority(level).build();
+    }
+
+    /**
+     * Records should come out highest level first, and in insertion order within a level.
+     */
+    @Test
+    public void testOrdering() {
+        SmartQueueBucketQueue<EventType, String> queue = new SmartQueueBucketQueue<>();
+        queue.add(record(5, "a"));
+        queue.add(record(1023, "b"));
+        queue.add(record(5, "c"));
+        queue.add(record(0, "d"));
+        queue.add(record(700, "e"));
+        queue.add(record(64, "f"));
+        queue.add(record(63, "g"));
+
+        Assert.assertEquals(7, queue.size());
+        Assert.assertEquals("b", queue.peek().getData());
+        String[] expected = {"b", "e", "f", "g", "a", "c", "d"};
+        for (String data : expected) {
+            Assert.assertEquals(data, queue.poll().getData());
+        }
+        Assert.assertTrue(queue.isEmpty());
+        Assert.assertNull(queue.poll());
+    }
+
+    /**
+     * Removing through the iterator should keep the size and the non-empty bitmap in step.
+     */
+    @Test
+    public void testIteratorRemove() {
+        SmartQueueBucketQueue<EventType, String> queue = new SmartQueueBucketQueue<>();
+        for (int i = 0; i < 10; i++) {
+            queue.add(record(i * 100, "" + i));
+        }
+
+        Iterator<SmartQueueRecord<EventType, String>> iterator = queue.iterator();
+        while (iterator.hasNext()) {
+            if (Integer.parseInt(iterator.next().getData()) % 2 == 0) {
+                iterator.remove();
+            }
+        }
+
+        Assert.assertEquals(5, queue.size());
+        for (int i = 9; i > 0; i -= 2) {
+            Assert.assertEquals("" + i, queue.poll().getData());
+        }
+        Assert.assertTrue(queue.isEmpty());
+    }
+
+    /**
+     * Named priorities should sort against numeric levels by their mapped level.
+     */
+    @Test
+    public void testNamedPriorities() {
+        SmartQueueBucketQueue<EventType, String> queue = new SmartQueueBucketQueue<>();
+        queue.add(new SmartQueueRecord.Builder<EventType, String>(EventType.B, "normal")
+                .withPriority(SmartQueuePriority.NORMAL)
+                .build());
+        queue.add(record(SmartQueuePriority.NORMAL.getLevel() + 1, "above"));
+        queue.add(record(SmartQueuePriority.NORMAL.getLevel() - 1, "below"));
+
+        Assert.assertEquals("above", queue.poll().getData());
+        Assert.assertEquals("normal", queue.poll().getData());
+        Assert.assertEquals("below", queue.poll().getData());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testLevelOutOfRange() {
+        record(SmartQueuePriority.MAX_LEVEL + 1, "nope");
+    }
+}